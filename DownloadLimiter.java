@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2011 Catch.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Harry Tormey   <harry@catch.com>
+ */
+
+// Gates image downloads. The number of parallel fetches is adjusted AIMD style
+// from the latency and throughput of completed requests, and background
+// (prefetch) traffic can be held to a bytes per second budget.
+// Plain Java on purpose, so it can be tested on the JVM against a local server
+// or a simulated Clock.
+public class DownloadLimiter {
+	public static final int MIN_CONCURRENCY = 1;
+	public static final int MAX_CONCURRENCY = 6;
+	private static final int INITIAL_CONCURRENCY = 2;
+	// Back off once average latency is this many times the best seen so far,
+	// or average per request throughput falls below this fraction of the best.
+	private static final float LATENCY_BACKOFF_FACTOR = 2.0f;
+	private static final float THROUGHPUT_BACKOFF_FACTOR = 0.5f;
+	private static final float AVERAGE_WEIGHT = 0.25f;
+	// How fast the best latency and throughput drift towards recent samples, so
+	// one lucky request doesn't pin the baseline after the network changes.
+	private static final float BASELINE_WEIGHT = 0.02f;
+
+	private int mLimit = INITIAL_CONCURRENCY;
+	private int mInFlight = 0;
+	private int mForegroundWaiting = 0;
+	private int mCompletedSinceChange = 0;
+	private float mMinLatency = 0;
+	private float mAvgLatency = 0;
+	private float mMaxThroughput = 0;
+	private float mAvgThroughput = 0;
+	private long mBackgroundBytesPerSecond = 0;
+	private long mBackgroundBytesAvailable = 0;
+	private long mBackgroundBudgetUpdated = 0;
+	private final Clock mClock;
+
+	// Time source for measuring and throttling.
+	public interface Clock {
+		long elapsedMillis();
+
+		void sleep(long millis) throws InterruptedException;
+	}
+
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+		public long elapsedMillis() {
+			return System.nanoTime() / 1000000;
+		}
+
+		public void sleep(long millis) throws InterruptedException {
+			Thread.sleep(millis);
+		}
+	};
+
+	public DownloadLimiter() {
+		this(SYSTEM_CLOCK);
+	}
+
+	public DownloadLimiter(Clock clock) {
+		mClock = clock;
+	}
+
+	// Blocks until a download slot is free. Background requests also wait for
+	// any foreground request that is queued, so on screen images go first.
+	public synchronized void acquire(boolean background) throws InterruptedException {
+		if (background) {
+			while (mInFlight >= mLimit || mForegroundWaiting > 0) {
+				wait();
+			}
+		} else {
+			mForegroundWaiting++;
+			try {
+				while (mInFlight >= mLimit) {
+					wait();
+				}
+			} finally {
+				mForegroundWaiting--;
+			}
+		}
+		mInFlight++;
+	}
+
+	// Hands back a slot taken by acquire(). latency is the time until the response
+	// arrived, or -1 if there was none, and transferTime the time spent reading
+	// the body, or 0 if it shouldn't be sampled. failed is true for I/O errors,
+	// which are treated as a sign of congestion.
+	public synchronized void release(long bytes, long latency, long transferTime, boolean failed) {
+		mInFlight--;
+		notifyAll();
+
+		// Requests that never got a response (bad URL and the like) say nothing
+		// about the network either way.
+		if (!failed && latency < 0) {
+			return;
+		}
+		mCompletedSinceChange++;
+
+		boolean congested = failed;
+		if (!failed) {
+			congested = addSample(bytes, latency, transferTime);
+		}
+
+		if (congested) {
+			// Requests that were already running when we last backed off were
+			// started under the old limit, so don't punish their results twice.
+			if (mCompletedSinceChange >= mLimit && mLimit > MIN_CONCURRENCY) {
+				mLimit = Math.max(MIN_CONCURRENCY, mLimit / 2);
+				mCompletedSinceChange = 0;
+			}
+		} else if (mCompletedSinceChange >= mLimit && mLimit < MAX_CONCURRENCY) {
+			mLimit++;
+			mCompletedSinceChange = 0;
+		}
+	}
+
+	private boolean addSample(long bytes, long latency, long transferTime) {
+		if (mMinLatency == 0 || latency < mMinLatency) {
+			mMinLatency = Math.max(latency, 1);
+		} else {
+			mMinLatency += BASELINE_WEIGHT * (latency - mMinLatency);
+		}
+		mAvgLatency = (mAvgLatency == 0) ? latency : mAvgLatency + AVERAGE_WEIGHT * (latency - mAvgLatency);
+
+		boolean congested = mAvgLatency > mMinLatency * LATENCY_BACKOFF_FACTOR;
+
+		// Tiny responses are dominated by latency and say little about throughput.
+		if (transferTime > 0 && bytes > 0) {
+			float throughput = bytes * 1000f / transferTime;
+			if (throughput > mMaxThroughput) {
+				mMaxThroughput = throughput;
+			} else {
+				mMaxThroughput += BASELINE_WEIGHT * (throughput - mMaxThroughput);
+			}
+			mAvgThroughput = (mAvgThroughput == 0) ? throughput : mAvgThroughput + AVERAGE_WEIGHT * (throughput - mAvgThroughput);
+			congested |= mAvgThroughput < mMaxThroughput * THROUGHPUT_BACKOFF_FACTOR;
+		}
+		return congested;
+	}
+
+	// Called as bytes are read. Background reads sleep as needed to stay within
+	// the budget, handing their slot to someone else in the meantime; foreground
+	// reads are never throttled. Returns the time spent throttled.
+	public long consume(int bytes, boolean background) {
+		if (!background) {
+			return 0;
+		}
+
+		long sleepTime = 0;
+		synchronized (this) {
+			if (mBackgroundBytesPerSecond <= 0) {
+				return 0;
+			}
+
+			// Token bucket holding at most one second worth of bytes.
+			long now = mClock.elapsedMillis();
+			long elapsed = now - mBackgroundBudgetUpdated;
+			mBackgroundBudgetUpdated = now;
+			mBackgroundBytesAvailable = Math.min(mBackgroundBytesPerSecond,
+					mBackgroundBytesAvailable + elapsed * mBackgroundBytesPerSecond / 1000);
+			mBackgroundBytesAvailable -= bytes;
+
+			if (mBackgroundBytesAvailable < 0) {
+				sleepTime = -mBackgroundBytesAvailable * 1000 / mBackgroundBytesPerSecond;
+			}
+		}
+
+		if (sleepTime <= 0) {
+			return 0;
+		}
+
+		final long startTime = mClock.elapsedMillis();
+		synchronized (this) {
+			mInFlight--;
+			notifyAll();
+		}
+		try {
+			mClock.sleep(sleepTime);
+			acquire(true);
+		} catch (InterruptedException e) {
+			// The caller still owes a release(), so take the slot back regardless.
+			synchronized (this) {
+				mInFlight++;
+			}
+			Thread.currentThread().interrupt();
+		}
+		return mClock.elapsedMillis() - startTime;
+	}
+
+	// Caps background traffic to bytesPerSecond, 0 removes the cap.
+	public synchronized void setBackgroundBytesPerSecond(long bytesPerSecond) {
+		mBackgroundBytesPerSecond = Math.max(bytesPerSecond, 0);
+		mBackgroundBytesAvailable = mBackgroundBytesPerSecond;
+		mBackgroundBudgetUpdated = mClock.elapsedMillis();
+	}
+
+	public synchronized int getConcurrencyLimit() {
+		return mLimit;
+	}
+
+	public synchronized int getInFlight() {
+		return mInFlight;
+	}
+}
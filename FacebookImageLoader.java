@@ -31,19 +31,34 @@ import java.io.FilterInputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.RectF;
+import android.graphics.Shader;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Build;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.DisplayMetrics;
 import android.widget.ImageView;
@@ -60,36 +75,160 @@ public class FacebookImageLoader {
 	private static final int BUFFER_SIZE = 8 * 1024;
 	private static final String BASE_URL = "http://graph.facebook.com/";
 	private static final String PICTURE = "/picture";
+	private static final int HARD_CACHE_CAPACITY = 40;
 	private static int mDensityDpi = 0;
+	private static final DownloadLimiter mDownloadLimiter = new DownloadLimiter();
+	// On screen loads get as many threads as the limiter can ever allow, AsyncTask
+	// runs them one at a time on newer releases. Prefetches get their own thread
+	// so one waiting on the limiter or the bandwidth budget never holds up a load.
+	private static final ExecutorService mLoaderExecutor = Executors.newFixedThreadPool(DownloadLimiter.MAX_CONCURRENCY);
+	private static final ExecutorService mPrefetchExecutor = Executors.newSingleThreadExecutor();
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private String mBaseUrl;
 	private Context mContext;
 	private int mMaxDimension;
+	private TieredFileCache mDiskCache;
+	private boolean mCacheTransformedOnDisk = false;
+
+	// Bitmaps pushed out of the hard cache are kept around as long as the GC allows.
+	private final ConcurrentHashMap<String, SoftReference<Bitmap>> mSoftBitmapCache =
+		new ConcurrentHashMap<String, SoftReference<Bitmap>>(HARD_CACHE_CAPACITY / 2);
+
+	private final HashMap<String, Bitmap> mHardBitmapCache =
+		new LinkedHashMap<String, Bitmap>(HARD_CACHE_CAPACITY / 2, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(LinkedHashMap.Entry<String, Bitmap> eldest) {
+			if (size() > HARD_CACHE_CAPACITY) {
+				mSoftBitmapCache.put(eldest.getKey(), new SoftReference<Bitmap>(eldest.getValue()));
+				return true;
+			}
+			return false;
+		}
+	};
 
 	public FacebookImageLoader(Context context) {
+		this(context, BASE_URL);
+	}
+
+	//baseUrl replaces http://graph.facebook.com/, e.g. to point the loader at a local test server.
+	public FacebookImageLoader(Context context, String baseUrl) {
 		mContext = context;
+		mBaseUrl = baseUrl;
 		mMaxDimension = getMaxThumbnailDimension(mContext, false);
+		mDiskCache = TieredFileCache.getInstance(mContext);
 	}
 
 	public void load(String filename, ImageView imageView) {
-		Bitmap bitmap = getBitmapFromCache(filename);
+		load(filename, imageView, new ImageTransformation[0]);
+	}
+
+	//Load an image and run it through a chain of transformations, e.g. new ImageTransformation.Circle().
+	//The transformed result is what gets cached, so rebinding a row doesn't redo any work.
+	//At most one stage may clip the image (Circle, RoundedCorners).
+	public void load(String filename, ImageView imageView, ImageTransformation... transformations) {
+		getClippingTransformation(transformations);
+		String cacheKey = getCacheKey(filename, transformations);
+		recordAccess(filename, cacheKey, transformations);
+		//Memory misses, including plain loads, are left to BitmapLoaderTask so the UI thread never decodes.
+		Bitmap bitmap = getBitmapFromMemoryCache(cacheKey);
 		if (bitmap == null) {
-			forceLoad(filename, imageView);
+			forceLoad(filename, cacheKey, transformations, imageView);
 		} else {
 			imageView.setImageBitmap(bitmap);
 		}
 	}
 
-	private void forceLoad(String filename, ImageView imageView) {
+	//Every bind counts towards keeping the files behind it on fast storage, even when memory serves it.
+	private void recordAccess(String filename, String cacheKey, ImageTransformation[] transformations) {
+		if (filename == null) {
+			return;
+		}
+		mDiskCache.recordAccess(filename);
+		if (mCacheTransformedOnDisk && transformations.length > 0) {
+			mDiskCache.recordAccess(getTransformedFileName(cacheKey));
+		}
+	}
+
+	//Also keep transformed images in the disk cache, so they survive the process being killed.
+	public void setCacheTransformedOnDisk(boolean cacheTransformedOnDisk) {
+		mCacheTransformedOnDisk = cacheTransformedOnDisk;
+	}
+
+	//Download an image to the disk cache ahead of time, e.g. for rows just off screen.
+	//Prefetches wait behind on screen loads and count against the background bandwidth budget.
+	public void prefetch(String filename) {
+		if (filename == null || mDiskCache.peekFile(filename) != null) {
+			return;
+		}
+		mPrefetchExecutor.execute(new PrefetchTask(filename));
+	}
+
+	//Limit prefetch traffic to bytesPerSecond across all loaders, 0 means unlimited.
+	public static void setBackgroundBandwidthBudget(long bytesPerSecond) {
+		mDownloadLimiter.setBackgroundBytesPerSecond(bytesPerSecond);
+	}
+
+	private void forceLoad(String filename, String cacheKey, ImageTransformation[] transformations, ImageView imageView) {
 		// State sanity: filename is guaranteed to never be null in LoadedDrawable and cache keys.
 		if (filename == null) {
 			imageView.setImageDrawable(null);
 			return;
 		}
 
-		BitmapLoaderTask task = new BitmapLoaderTask(imageView);
+		BitmapLoaderTask task = new BitmapLoaderTask(imageView, filename, cacheKey, transformations);
 		//This is where we tie a reference to the image filename to ImageView.
-		LoadedDrawable downloadedDrawable = new LoadedDrawable(filename);
+		//The cache key is used so the same image with different transformations counts as a different image.
+		LoadedDrawable downloadedDrawable = new LoadedDrawable(cacheKey);
 		imageView.setImageDrawable(downloadedDrawable);
-		task.execute(filename);
+		mLoaderExecutor.execute(task);
+	}
+
+	private static String getCacheKey(String filename, ImageTransformation[] transformations) {
+		if (filename == null || transformations.length == 0) {
+			return filename;
+		}
+
+		StringBuilder key = new StringBuilder(filename);
+		for (ImageTransformation transformation : transformations) {
+			key.append('|').append(transformation.getKey());
+		}
+		return key.toString();
+	}
+
+	//Cache keys contain characters that aren't safe in file names, the hash keeps sanitized names distinct.
+	private static String getTransformedFileName(String cacheKey) {
+		return cacheKey.replaceAll("[^A-Za-z0-9._-]", "_") + "_" + Integer.toHexString(cacheKey.hashCode()) + ".png";
+	}
+
+	private Bitmap getBitmapFromMemoryCache(String cacheKey) {
+		if (cacheKey == null) {
+			return null;
+		}
+
+		synchronized (mHardBitmapCache) {
+			final Bitmap bitmap = mHardBitmapCache.get(cacheKey);
+			if (bitmap != null) {
+				return bitmap;
+			}
+		}
+
+		SoftReference<Bitmap> bitmapReference = mSoftBitmapCache.get(cacheKey);
+		if (bitmapReference != null) {
+			final Bitmap bitmap = bitmapReference.get();
+			if (bitmap != null) {
+				return bitmap;
+			}
+			mSoftBitmapCache.remove(cacheKey);
+		}
+		return null;
+	}
+
+	private void addBitmapToMemoryCache(String cacheKey, Bitmap bitmap) {
+		if (cacheKey != null && bitmap != null) {
+			synchronized (mHardBitmapCache) {
+				mHardBitmapCache.put(cacheKey, bitmap);
+			}
+		}
 	}
 
 	//Check to see if given filename matches that associated with ImageView. We need this because Listview recycles ImageViews.
@@ -105,16 +244,38 @@ public class FacebookImageLoader {
 		return false;
 	}
 
-	Bitmap downloadBitmap(final String url, File cacheFile) {
+	boolean downloadToFile(final String url, File cacheFile, boolean background) {
 		// HttpClient works with older Android versions.
 		final HttpClient client = new DefaultHttpClient();
-		final HttpGet getRequest = new HttpGet(url);
+		final HttpGet getRequest;
 		try {
+			getRequest = new HttpGet(url);
+		} catch (IllegalArgumentException e) {
+			Log.w(LOGCAT_NAME, "Incorrect URL: " + url);
+			return false;
+		}
+
+		// latency stays -1 unless a response arrives, so the limiter can tell
+		// requests that never reached the network apart from fast ones.
+		long latency = -1;
+		long transferTime = 0;
+		long throttledTime = 0;
+		long bytesRead = 0;
+		boolean acquired = false;
+		boolean failed = false;
+		boolean downloaded = false;
+		try {
+			// All loaders share one limiter so the concurrency limit is global.
+			mDownloadLimiter.acquire(background);
+			acquired = true;
+
+			final long startTime = SystemClock.elapsedRealtime();
 			HttpResponse response = client.execute(getRequest);
+			latency = SystemClock.elapsedRealtime() - startTime;
 			final int statusCode = response.getStatusLine().getStatusCode();
 			if (statusCode != HttpStatus.SC_OK) {
 				Log.w(LOGCAT_NAME, "Error " + statusCode + " while retrieving bitmap from " + url);
-				return null;
+				return false;
 			}
 
 			final HttpEntity entity = response.getEntity();
@@ -125,14 +286,16 @@ public class FacebookImageLoader {
 					FlushedInputStream in = new FlushedInputStream(inputStream);
 					if(cacheFile != null && cacheFile.exists()){
 						FileOutputStream fos = new FileOutputStream(cacheFile);
-						while(true){
-							int bytedata = in.read();
-							if(bytedata == -1)
-								 break;
-							fos.write(bytedata);
+						byte[] buf = new byte[BUFFER_SIZE];
+						int len;
+						while ((len = in.read(buf)) != -1) {
+							fos.write(buf, 0, len);
+							bytesRead += len;
+							throttledTime += mDownloadLimiter.consume(len, background);
 						}
 						fos.close();
-						return BitmapFactory.decodeFile(cacheFile.getAbsolutePath());
+						transferTime = SystemClock.elapsedRealtime() - startTime - latency;
+						downloaded = true;
 					}
 				} finally {
 					if (inputStream != null) {
@@ -141,7 +304,11 @@ public class FacebookImageLoader {
 					entity.consumeContent();
 				}
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Log.w(LOGCAT_NAME, "Interrupted while waiting to retrieve bitmap from " + url);
 		} catch (IOException e) {
+			failed = true;
 			getRequest.abort();
 			Log.w(LOGCAT_NAME, "I/O error while retrieving bitmap from " + url, e);
 		} catch (IllegalStateException e) {
@@ -151,26 +318,111 @@ public class FacebookImageLoader {
 			getRequest.abort();
 			Log.w(LOGCAT_NAME, "Error while retrieving bitmap from " + url, e);
 		} finally {
+			if (acquired) {
+				// A transfer held back by the bandwidth budget says nothing about the
+				// link, so only its latency is used.
+				mDownloadLimiter.release(bytesRead, latency, (throttledTime > 0) ? 0 : transferTime, failed);
+			}
 		}
-		return null;
+
+		return downloaded;
 	}
 
 	private Bitmap loadBitmap(String filename) {
 		//First check if file exists, if not try and do the facebook fetch
 		Bitmap bitmap = null;
-		File cacheFile = FileUtil.getFileFromCache(mContext, filename);
+		File cacheFile = mDiskCache.getFile(filename);
+		if((cacheFile == null || !cacheFile.exists()) && fetchToCache(filename, false)){
+			cacheFile = mDiskCache.peekFile(filename);
+		}
 		if(cacheFile != null && cacheFile.exists()){
 			bitmap = loadImageFromFile(cacheFile.getPath(), mMaxDimension, true);
-			return bitmap;
-		}else{
-			//Download from FB and cache
-			cacheFile = FileUtil.addFileToCache(mContext, filename);
-			final String url = BASE_URL + filename  + PICTURE;
-			bitmap = downloadBitmap(url, cacheFile);
 		}
 		return bitmap;
 	}
 
+	private Bitmap loadTransformedBitmap(String filename, String cacheKey, ImageTransformation[] transformations) {
+		String transformedFilename = getTransformedFileName(cacheKey);
+		if (mCacheTransformedOnDisk) {
+			File transformedFile = mDiskCache.getFile(transformedFilename);
+			if (transformedFile != null && transformedFile.exists()) {
+				Bitmap bitmap = BitmapFactory.decodeFile(transformedFile.getPath());
+				if (bitmap != null) {
+					return bitmap;
+				}
+			}
+		}
+
+		Bitmap source = null;
+		File cacheFile = mDiskCache.getFile(filename);
+		if ((cacheFile == null || !cacheFile.exists()) && fetchToCache(filename, false)) {
+			cacheFile = mDiskCache.peekFile(filename);
+		}
+		// Fresh downloads are decoded from the cache too, so the source is always
+		// sampled down for the output size rather than decoded at full resolution.
+		if (cacheFile != null && cacheFile.exists()) {
+			source = decodeForTransformation(cacheFile.getPath(), mMaxDimension, transformations);
+		}
+		if (source == null) {
+			return null;
+		}
+
+		Bitmap bitmap = transformBitmap(source, mMaxDimension, transformations);
+		// The source was only ever visible to us, so give its memory back right away.
+		if (bitmap != source) {
+			source.recycle();
+		}
+
+		if (bitmap != null && mCacheTransformedOnDisk) {
+			saveTransformedBitmap(transformedFilename, bitmap);
+		}
+		return bitmap;
+	}
+
+	private void saveTransformedBitmap(String transformedFilename, Bitmap bitmap) {
+		File transformedFile = mDiskCache.createTempFile(transformedFilename);
+		if (transformedFile == null) {
+			return;
+		}
+
+		boolean saved = false;
+		try {
+			BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(transformedFile), BUFFER_SIZE);
+			// PNG keeps the transparency around circles and rounded corners.
+			saved = bitmap.compress(CompressFormat.PNG, 100, out);
+			out.close();
+		} catch (IOException e) {
+			Log.w(LOGCAT_NAME, "Error writing transformed image " + transformedFile.getPath(), e);
+			saved = false;
+		}
+
+		if (saved) {
+			mDiskCache.commit(transformedFilename, transformedFile);
+		} else {
+			mDiskCache.abort(transformedFile);
+		}
+	}
+
+	//Download from FB into a temporary file, the disk cache decides where it lives once it's complete.
+	//Nothing is decoded here, callers decode the cached file at the size they need.
+	private boolean fetchToCache(String filename, boolean background) {
+		File tempFile = mDiskCache.createTempFile(filename);
+		if (tempFile == null) {
+			return false;
+		}
+		final String url = mBaseUrl + filename  + PICTURE;
+		if (downloadToFile(url, tempFile, background)) {
+			// Only keep what BitmapFactory can read, peeking at the bounds is enough to tell.
+			BitmapFactory.Options opts = getImageSizeFromFile(tempFile.getPath());
+			if (opts != null && opts.outWidth > 0 && opts.outHeight > 0) {
+				return mDiskCache.commit(filename, tempFile);
+			}
+		}
+		// Don't leave an empty or partial file behind
+		mDiskCache.abort(tempFile);
+		return false;
+	}
+
 	//An InputStream that skips the exact number of bytes provided, unless it reaches EOF.
 	static class FlushedInputStream extends FilterInputStream {
 		public FlushedInputStream(InputStream inputStream) {
@@ -196,30 +448,42 @@ public class FacebookImageLoader {
 		}
 	}
 
-	private class BitmapLoaderTask extends AsyncTask<String, Void, Bitmap> {
-		private String filename;
+	private class BitmapLoaderTask implements Runnable {
+		private final String filename;
+		private final String cacheKey;
+		private final ImageTransformation[] transformations;
 		private final WeakReference<ImageView> imageViewReference;
 
-		public BitmapLoaderTask(ImageView imageView) {
+		public BitmapLoaderTask(ImageView imageView, String filename, String cacheKey, ImageTransformation[] transformations) {
 			imageViewReference = new WeakReference<ImageView>(imageView);
+			this.filename = filename;
+			this.cacheKey = cacheKey;
+			this.transformations = transformations;
 		}
 
-		@Override
-		protected Bitmap doInBackground(String... params) {
-			filename = params[0];
-			Bitmap bitmap = loadBitmap(filename);
-			return bitmap;
-		}
-
-		@Override
-		protected void onPostExecute(Bitmap bitmap) {
-			if (isCancelled()) {
-				bitmap = null;
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			Bitmap bitmap;
+			if (transformations.length == 0) {
+				bitmap = loadBitmap(filename);
+			} else {
+				bitmap = loadTransformedBitmap(filename, cacheKey, transformations);
 			}
+			addBitmapToMemoryCache(cacheKey, bitmap);
+
+			final Bitmap result = bitmap;
+			mHandler.post(new Runnable() {
+				public void run() {
+					onLoaded(result);
+				}
+			});
+		}
 
+		//Runs on the UI thread.
+		private void onLoaded(Bitmap bitmap) {
 			ImageView imageView = imageViewReference.get();
 			if (imageView != null) {
-				boolean filenamesMatch = checkImageViewFileName(imageView, filename);
+				boolean filenamesMatch = checkImageViewFileName(imageView, cacheKey);
 
 				if (imageView != null && filenamesMatch) {
 					imageView.setImageBitmap(bitmap);
@@ -228,6 +492,21 @@ public class FacebookImageLoader {
 		}
 	}
 
+	private class PrefetchTask implements Runnable {
+		private final String filename;
+
+		public PrefetchTask(String filename) {
+			this.filename = filename;
+		}
+
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			if (mDiskCache.peekFile(filename) == null) {
+				fetchToCache(filename, true);
+			}
+		}
+	}
+
 	static class LoadedDrawable extends ColorDrawable {
 		private final String mFilename;
 
@@ -242,20 +521,11 @@ public class FacebookImageLoader {
 		}
 	}
 
-	private Bitmap getBitmapFromCache(String filename) {
-		File cacheFile = FileUtil.getFileFromCache(mContext, filename);
-		if(cacheFile != null && cacheFile.exists()){
-			try{
-				final Bitmap bm = BitmapFactory.decodeStream(new FileInputStream(cacheFile));
-				return bm;
-			}catch (Exception e) {
-				Log.e(LOGCAT_NAME, "Error reading file: " + e.toString());
-			}
-		}
-		return null;
-	}
-
 	public void clearCache() {
+		synchronized (mHardBitmapCache) {
+			mHardBitmapCache.clear();
+		}
+		mSoftBitmapCache.clear();
 		FileUtil.cleanCaches(mContext);
 	}
 
@@ -365,6 +635,119 @@ public class FacebookImageLoader {
 		}
 	}
 
+	// Decode an image from a file for transformBitmap(). inSampleSize is picked
+	// from the final output size, rounding down so the decoded image is never
+	// smaller than the output and transformBitmap() does the exact scaling.
+	public static Bitmap decodeForTransformation(final String file, final int maxDimension, ImageTransformation... transformations) {
+		BitmapFactory.Options opts = getImageSizeFromFile(file);
+		if (opts == null || opts.outWidth <= 0 || opts.outHeight <= 0) {
+			return null;
+		}
+
+		Point size = measureTransformation(opts.outWidth, opts.outHeight, maxDimension, transformations);
+		int scaler = Math.max(1, Math.min(opts.outWidth / size.x, opts.outHeight / size.y));
+
+		opts.inJustDecodeBounds = false;
+		opts.inSampleSize = scaler;
+
+		try {
+			BufferedInputStream is = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+			Bitmap image = BitmapFactory.decodeStream(is, null, opts);
+			is.close();
+			return image;
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			return null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} catch (OutOfMemoryError e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// Resize and transform a Bitmap in a single pass. The source is scaled and
+	// center cropped through a shader while the stages draw, so the output is
+	// the only bitmap allocated whatever the length of the chain.
+	public static Bitmap transformBitmap(final Bitmap bitmap, final int maxDimension, ImageTransformation... transformations) {
+		// Check input
+		if (bitmap == null) {
+			return null;
+		}
+		ImageTransformation clip = getClippingTransformation(transformations);
+
+		Point size = measureTransformation(bitmap.getWidth(), bitmap.getHeight(), maxDimension, transformations);
+
+		Bitmap output;
+		try {
+			output = Bitmap.createBitmap(size.x, size.y, Bitmap.Config.ARGB_8888);
+		} catch (OutOfMemoryError e) {
+			e.printStackTrace();
+			return null;
+		}
+
+		float scale = Math.max((float) size.x / bitmap.getWidth(), (float) size.y / bitmap.getHeight());
+		Matrix matrix = new Matrix();
+		matrix.setScale(scale, scale);
+		matrix.postTranslate((size.x - bitmap.getWidth() * scale) / 2, (size.y - bitmap.getHeight() * scale) / 2);
+
+		BitmapShader shader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+		shader.setLocalMatrix(matrix);
+		Paint sourcePaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+		sourcePaint.setShader(shader);
+
+		Canvas canvas = new Canvas(output);
+		RectF bounds = new RectF(0, 0, size.x, size.y);
+		if (clip != null) {
+			clip.drawSource(canvas, sourcePaint, bounds);
+		} else {
+			canvas.drawRect(bounds, sourcePaint);
+		}
+
+		for (ImageTransformation transformation : transformations) {
+			transformation.drawOverlay(canvas, bounds);
+		}
+		return output;
+	}
+
+	// Only one stage can decide the shape the source is painted in, and a second
+	// one's border would be drawn around a shape that isn't there, so reject it.
+	private static ImageTransformation getClippingTransformation(ImageTransformation[] transformations) {
+		ImageTransformation clip = null;
+		for (ImageTransformation transformation : transformations) {
+			if (transformation.clipsSource()) {
+				if (clip != null) {
+					throw new IllegalArgumentException("Only one clipping transformation is allowed, got "
+							+ clip.getKey() + " and " + transformation.getKey());
+				}
+				clip = transformation;
+			}
+		}
+		return clip;
+	}
+
+	// Output size of a transformation chain: the processImageFromBitmap() size,
+	// then adjusted by each stage in turn.
+	private static Point measureTransformation(int width, int height, int maxDimension, ImageTransformation[] transformations) {
+		float newWidth = width;
+		float newHeight = height;
+		int maxSide = Math.max(width, height);
+
+		if (maxSide > maxDimension) {
+			float ratio = (float) maxDimension / (float) maxSide;
+			newWidth *= ratio;
+			newHeight *= ratio;
+		}
+
+		Point size = new Point(Math.max(1, Math.round(newWidth)), Math.max(1, Math.round(newHeight)));
+		for (ImageTransformation transformation : transformations) {
+			transformation.measure(size);
+		}
+		size.set(Math.max(1, size.x), Math.max(1, size.y));
+		return size;
+	}
+
 	public static BitmapFactory.Options getImageSizeFromFile(final String file) {
 		BitmapFactory.Options opts = new BitmapFactory.Options();
 		opts.inJustDecodeBounds = true;
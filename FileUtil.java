@@ -130,7 +130,7 @@ public class FileUtil {
 	}
 
 	public static File getFileFromExternalCache(Context context, String fileName){
-		File extCacheDir = getInternalCacheDir(context);
+		File extCacheDir = getExternalCacheDir(context);
 		return getFileFromCache(context, fileName, extCacheDir);
 	}
 
@@ -174,12 +174,15 @@ public class FileUtil {
 	public static boolean moveFileToFile(Context context, File src, File dst) {
 		if (context != null && src != null && dst != null) {
 			File extDir = Environment.getExternalStorageDirectory();
-			File intDir = context.getFilesDir();
+			// The app's data directory holds both getFilesDir() and getCacheDir()
+			File intDir = context.getFilesDir().getParentFile();
 
 			// If src and dst are on the same filesystem, just renameTo()
 			if ((src.getPath().startsWith(extDir.getPath()) && dst.getPath().startsWith(extDir.getPath())) ||
 				(src.getPath().startsWith(intDir.getPath()) && dst.getPath().startsWith(intDir.getPath()))) {
-				return src.renameTo(dst);
+				if (src.renameTo(dst)) {
+					return true;
+				}
 			}
 			
 			// Otherwise, copy and delete src
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011 Catch.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Harry Tormey   <harry@catch.com>
+ */
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.RectF;
+
+// A stage in the transformation chain passed to FacebookImageLoader.load().
+// All stages draw into the same output bitmap: measure() picks its size, the
+// one stage that clipsSource() paints the scaled source through sourcePaint
+// (the loader fills the whole bitmap if there is none), and then every stage
+// gets to drawOverlay() on top. Chains with more than one clipping stage are
+// rejected.
+public abstract class ImageTransformation {
+	// Used to build the memory and disk cache keys, so it must change whenever
+	// the output would.
+	public abstract String getKey();
+
+	// Adjust the output size chosen by the earlier stages.
+	public void measure(Point size) {
+	}
+
+	// Whether this stage paints the source in its own shape with drawSource().
+	public boolean clipsSource() {
+		return false;
+	}
+
+	public void drawSource(Canvas canvas, Paint sourcePaint, RectF bounds) {
+	}
+
+	public void drawOverlay(Canvas canvas, RectF bounds) {
+	}
+
+	private static Paint createBorderPaint(float borderWidth, int borderColor) {
+		Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		paint.setStyle(Paint.Style.STROKE);
+		paint.setStrokeWidth(borderWidth);
+		paint.setColor(borderColor);
+		return paint;
+	}
+
+	// Scale down so the longest side is at most maxDimension pixels. Like
+	// processImageFromBitmap(), smaller images are never scaled up.
+	public static class Resize extends ImageTransformation {
+		private final int mMaxDimension;
+
+		public Resize(int maxDimension) {
+			mMaxDimension = maxDimension;
+		}
+
+		@Override
+		public String getKey() {
+			return "resize(" + mMaxDimension + ")";
+		}
+
+		@Override
+		public void measure(Point size) {
+			int maxSide = Math.max(size.x, size.y);
+			if (maxSide <= mMaxDimension) {
+				return;
+			}
+			float ratio = (float) mMaxDimension / (float) maxSide;
+			size.set(Math.max(1, Math.round(size.x * ratio)), Math.max(1, Math.round(size.y * ratio)));
+		}
+	}
+
+	// Center crop to a circle, optionally with a border.
+	public static class Circle extends ImageTransformation {
+		private final float mBorderWidth;
+		private final int mBorderColor;
+
+		public Circle() {
+			this(0, 0);
+		}
+
+		public Circle(float borderWidth, int borderColor) {
+			mBorderWidth = borderWidth;
+			mBorderColor = borderColor;
+		}
+
+		@Override
+		public String getKey() {
+			return "circle(" + mBorderWidth + "," + Integer.toHexString(mBorderColor) + ")";
+		}
+
+		@Override
+		public void measure(Point size) {
+			int side = Math.min(size.x, size.y);
+			size.set(side, side);
+		}
+
+		@Override
+		public boolean clipsSource() {
+			return true;
+		}
+
+		@Override
+		public void drawSource(Canvas canvas, Paint sourcePaint, RectF bounds) {
+			canvas.drawCircle(bounds.centerX(), bounds.centerY(), getRadius(bounds), sourcePaint);
+		}
+
+		@Override
+		public void drawOverlay(Canvas canvas, RectF bounds) {
+			if (mBorderWidth > 0) {
+				canvas.drawCircle(bounds.centerX(), bounds.centerY(), getRadius(bounds) - mBorderWidth / 2,
+						createBorderPaint(mBorderWidth, mBorderColor));
+			}
+		}
+
+		private static float getRadius(RectF bounds) {
+			return Math.min(bounds.width(), bounds.height()) / 2;
+		}
+	}
+
+	// Round the corners, optionally with a border.
+	public static class RoundedCorners extends ImageTransformation {
+		private final float mRadius;
+		private final float mBorderWidth;
+		private final int mBorderColor;
+
+		public RoundedCorners(float radius) {
+			this(radius, 0, 0);
+		}
+
+		public RoundedCorners(float radius, float borderWidth, int borderColor) {
+			mRadius = radius;
+			mBorderWidth = borderWidth;
+			mBorderColor = borderColor;
+		}
+
+		@Override
+		public String getKey() {
+			return "rounded(" + mRadius + "," + mBorderWidth + "," + Integer.toHexString(mBorderColor) + ")";
+		}
+
+		@Override
+		public boolean clipsSource() {
+			return true;
+		}
+
+		@Override
+		public void drawSource(Canvas canvas, Paint sourcePaint, RectF bounds) {
+			canvas.drawRoundRect(bounds, mRadius, mRadius, sourcePaint);
+		}
+
+		@Override
+		public void drawOverlay(Canvas canvas, RectF bounds) {
+			if (mBorderWidth > 0) {
+				float inset = mBorderWidth / 2;
+				RectF border = new RectF(bounds.left + inset, bounds.top + inset, bounds.right - inset, bounds.bottom - inset);
+				float radius = Math.max(0, mRadius - inset);
+				canvas.drawRoundRect(border, radius, radius, createBorderPaint(mBorderWidth, mBorderColor));
+			}
+		}
+	}
+}
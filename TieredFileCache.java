@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2011 Catch.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Harry Tormey   <harry@catch.com>
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+
+// Two tier disk cache. Small, frequently used files are kept in the internal
+// cache directory, larger or colder files are demoted to the external one.
+// There is one instance per process since the directories are shared.
+public class TieredFileCache {
+	private static final String LOGCAT_NAME = "TieredFileCache";
+	private static final String NOMEDIA_FILENAME = ".nomedia";
+	private static final int PROMOTE_THRESHOLD = 3;
+	// All counts are halved after this many accesses, so entries that were hot
+	// a long time ago cool down again.
+	private static final int ACCESSES_PER_AGING = 256;
+	private static final long MAX_INTERNAL_FILE_SIZE = 16 * 1024;
+	private static final long MAX_INTERNAL_CACHE_SIZE = 1024 * 1024;
+	private static final long MAX_EXTERNAL_CACHE_SIZE = 10 * 1024 * 1024;
+	private static final String TEMP_PREFIX = "tmp_";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static TieredFileCache mInstance;
+	// Guarded by itself rather than the cache, so counting an access on the UI
+	// thread never waits behind a file being moved.
+	private final HashMap<String, Integer> mAccessCounts = new HashMap<String, Integer>();
+	private int mAccessesSinceAging = 0;
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+	private Context mContext;
+
+	public static synchronized TieredFileCache getInstance(Context context) {
+		if (mInstance == null) {
+			mInstance = new TieredFileCache(context.getApplicationContext());
+		}
+		return mInstance;
+	}
+
+	private TieredFileCache(Context context) {
+		mContext = context;
+	}
+
+	// Count a use of fileName, whether it was served from memory or disk. Cheap
+	// enough to call from the UI thread.
+	public void recordAccess(String fileName) {
+		synchronized (mAccessCounts) {
+			Integer count = mAccessCounts.get(fileName);
+			mAccessCounts.put(fileName, (count == null) ? 1 : count + 1);
+
+			if (++mAccessesSinceAging >= ACCESSES_PER_AGING) {
+				mAccessesSinceAging = 0;
+				Iterator<Map.Entry<String, Integer>> it = mAccessCounts.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<String, Integer> entry = it.next();
+					int aged = entry.getValue() / 2;
+					if (aged == 0) {
+						it.remove();
+					} else {
+						entry.setValue(aged);
+					}
+				}
+			}
+		}
+	}
+
+	// Look up a file in either tier. Hot external entries are promoted in the
+	// background; a reader that loses the race with the move just misses.
+	public File getFile(String fileName) {
+		File cachedFile = FileUtil.getFileFromCache(mContext, fileName);
+		if (cachedFile != null) {
+			return cachedFile;
+		}
+
+		cachedFile = getExternalFile(fileName);
+		if (cachedFile != null && getAccessCount(fileName) >= PROMOTE_THRESHOLD && cachedFile.length() <= MAX_INTERNAL_FILE_SIZE) {
+			schedulePromotion(fileName);
+		}
+		return cachedFile;
+	}
+
+	// Look up a file in either tier without considering it for promotion.
+	public File peekFile(String fileName) {
+		File cachedFile = FileUtil.getFileFromCache(mContext, fileName);
+		if (cachedFile != null) {
+			return cachedFile;
+		}
+		return getExternalFile(fileName);
+	}
+
+	// Create a file to download fileName into. Temporary files are never
+	// returned by lookups or touched by trimming until they are committed.
+	public File createTempFile(String fileName) {
+		File intCacheDir = FileUtil.getInternalCacheDir(mContext);
+		if (intCacheDir == null) {
+			return null;
+		}
+
+		try {
+			return File.createTempFile(TEMP_PREFIX + fileName + "_", TEMP_SUFFIX, intCacheDir);
+		} catch (IOException e) {
+			Log.e(LOGCAT_NAME, "unable to create temporary file for " + fileName, e);
+			return null;
+		}
+	}
+
+	// Move a fully written temporary file into the internal tier under fileName.
+	// Files too large for internal storage are demoted straight away.
+	public synchronized boolean commit(String fileName, File tempFile) {
+		File intCacheDir = FileUtil.getInternalCacheDir(mContext);
+		if (intCacheDir == null || tempFile == null) {
+			abort(tempFile);
+			return false;
+		}
+
+		File cachedFile = new File(intCacheDir, fileName);
+		if (!tempFile.renameTo(cachedFile)) {
+			Log.e(LOGCAT_NAME, "unable to rename " + tempFile.getPath() + " to " + cachedFile.getPath());
+			abort(tempFile);
+			return false;
+		}
+
+		if (cachedFile.length() > MAX_INTERNAL_FILE_SIZE) {
+			demote(fileName, cachedFile);
+		}
+		trimCaches();
+		return true;
+	}
+
+	public void abort(File tempFile) {
+		if (tempFile != null) {
+			tempFile.delete();
+		}
+	}
+
+	private int getAccessCount(String fileName) {
+		synchronized (mAccessCounts) {
+			Integer count = mAccessCounts.get(fileName);
+			return (count == null) ? 0 : count;
+		}
+	}
+
+	private static boolean isExternalCacheAvailable() {
+		return Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState());
+	}
+
+	private static boolean isTempFile(File file) {
+		return file.getName().startsWith(TEMP_PREFIX) && file.getName().endsWith(TEMP_SUFFIX);
+	}
+
+	// The external tier may disappear at any time (card removed or shared over
+	// USB), in which case it is treated as empty.
+	private File getExternalFile(String fileName) {
+		if (!isExternalCacheAvailable()) {
+			return null;
+		}
+		return FileUtil.getFileFromExternalCache(mContext, fileName);
+	}
+
+	private void schedulePromotion(final String fileName) {
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				promoteFromExternal(fileName);
+			}
+		});
+	}
+
+	private synchronized void promoteFromExternal(String fileName) {
+		// An earlier request for the same entry may have promoted it already.
+		if (FileUtil.getFileFromCache(mContext, fileName) != null) {
+			return;
+		}
+
+		File src = getExternalFile(fileName);
+		if (src != null && promote(fileName, src)) {
+			trimCaches();
+		}
+	}
+
+	// Copy into a temporary file first, lookups check the internal tier before
+	// the external one and must never see a partial copy.
+	private boolean promote(String fileName, File src) {
+		File tempFile = createTempFile(fileName);
+		if (tempFile == null) {
+			return false;
+		}
+
+		File dst = new File(tempFile.getParentFile(), fileName);
+		if (!FileUtil.copyFileToFile(mContext, src, tempFile) || !tempFile.renameTo(dst)) {
+			abort(tempFile);
+			return false;
+		}
+
+		src.delete();
+		Log.i(LOGCAT_NAME, "promoted " + fileName + " to internal cache");
+		return true;
+	}
+
+	// The internal copy stays until the external one is complete, so lookups
+	// keep finding a whole file while this runs.
+	private boolean demote(String fileName, File src) {
+		if (!isExternalCacheAvailable()) {
+			return false;
+		}
+
+		File extCacheDir = FileUtil.getExternalCacheDir(mContext);
+		if (extCacheDir == null) {
+			return false;
+		}
+
+		File dst = new File(extCacheDir, fileName);
+		if (FileUtil.moveFileToFile(mContext, src, dst)) {
+			Log.i(LOGCAT_NAME, "demoted " + fileName + " to external cache");
+			return true;
+		}
+
+		dst.delete();
+		return false;
+	}
+
+	private void trimCaches() {
+		trimCache(FileUtil.getInternalCacheDir(mContext), MAX_INTERNAL_CACHE_SIZE, true);
+		if (isExternalCacheAvailable()) {
+			trimCache(FileUtil.getExternalCacheDir(mContext), MAX_EXTERNAL_CACHE_SIZE, false);
+		}
+	}
+
+	// Keep a tier under its size budget, least frequently used entries first.
+	// Internal entries are demoted, or deleted if there is no external tier;
+	// external entries are deleted.
+	private void trimCache(File cacheDir, long maxSize, boolean demote) {
+		if (cacheDir == null) {
+			return;
+		}
+
+		File files[] = cacheDir.listFiles();
+		if (files == null || files.length == 0) {
+			return;
+		}
+
+		// Snapshot everything the sort looks at, counts and mtimes keep changing
+		// under us. Downloads still being written count towards the budget but
+		// are never moved.
+		long totalSize = 0;
+		ArrayList<CacheEntry> entries = new ArrayList<CacheEntry>(files.length);
+		for (File file : files) {
+			long size = file.length();
+			totalSize += size;
+			if (!isTempFile(file) && !NOMEDIA_FILENAME.equals(file.getName())) {
+				entries.add(new CacheEntry(file, getAccessCount(file.getName()), file.lastModified(), size));
+			}
+		}
+		if (totalSize <= maxSize) {
+			return;
+		}
+
+		Collections.sort(entries);
+		for (CacheEntry entry : entries) {
+			if (totalSize <= maxSize) {
+				break;
+			}
+			if ((demote && demote(entry.file.getName(), entry.file)) || entry.file.delete()) {
+				totalSize -= entry.size;
+			}
+		}
+	}
+
+	private static class CacheEntry implements Comparable<CacheEntry> {
+		final File file;
+		final int accessCount;
+		final long lastModified;
+		final long size;
+
+		CacheEntry(File file, int accessCount, long lastModified, long size) {
+			this.file = file;
+			this.accessCount = accessCount;
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+
+		public int compareTo(CacheEntry other) {
+			if (accessCount != other.accessCount) {
+				return (accessCount < other.accessCount) ? -1 : 1;
+			}
+			return (lastModified < other.lastModified) ? -1 : ((lastModified == other.lastModified) ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2011 Catch.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Harry Tormey   <harry@catch.com>
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Runs on the JVM, no device needed:
+// javac -cp junit.jar -d out DownloadLimiter.java test/DownloadLimiterTest.java
+// java -cp junit.jar:hamcrest-core.jar:out org.junit.runner.JUnitCore DownloadLimiterTest
+public class DownloadLimiterTest {
+	private static final int RESPONSE_SIZE = 4 * 1024;
+	private static final long BODY_DELAY = 60;
+	private HttpServer mServer;
+	private ExecutorService mServerExecutor;
+
+	// Time only moves when the limiter sleeps or the test says so.
+	private static class FakeClock implements DownloadLimiter.Clock {
+		long now = 1000;
+		long slept = 0;
+		Runnable onSleep;
+
+		public long elapsedMillis() {
+			return now;
+		}
+
+		public void sleep(long millis) {
+			now += millis;
+			slept += millis;
+			if (onSleep != null) {
+				onSleep.run();
+			}
+		}
+	}
+
+	@After
+	public void tearDown() {
+		if (mServer != null) {
+			mServer.stop(0);
+			mServerExecutor.shutdownNow();
+		}
+	}
+
+	private static void complete(DownloadLimiter limiter, long latency) throws InterruptedException {
+		limiter.acquire(false);
+		limiter.release(RESPONSE_SIZE, latency, 0, false);
+	}
+
+	@Test
+	public void healthyRequestsRaiseTheLimit() throws Exception {
+		DownloadLimiter limiter = new DownloadLimiter(new FakeClock());
+		for (int i = 0; i < 50; i++) {
+			complete(limiter, 100);
+		}
+		assertEquals(DownloadLimiter.MAX_CONCURRENCY, limiter.getConcurrencyLimit());
+	}
+
+	@Test
+	public void risingLatencyHalvesTheLimit() throws Exception {
+		DownloadLimiter limiter = new DownloadLimiter(new FakeClock());
+		for (int i = 0; i < 50; i++) {
+			complete(limiter, 100);
+		}
+		for (int i = 0; i < DownloadLimiter.MAX_CONCURRENCY * 2; i++) {
+			complete(limiter, 1000);
+		}
+		assertTrue(limiter.getConcurrencyLimit() < DownloadLimiter.MAX_CONCURRENCY);
+	}
+
+	@Test
+	public void failuresHalveTheLimit() throws Exception {
+		DownloadLimiter limiter = new DownloadLimiter(new FakeClock());
+		for (int i = 0; i < 50; i++) {
+			complete(limiter, 100);
+		}
+		// The second failure was already in flight when the first one backed off.
+		for (int i = 0; i < 2; i++) {
+			limiter.acquire(false);
+			limiter.release(0, -1, 0, true);
+		}
+		assertEquals(DownloadLimiter.MAX_CONCURRENCY / 2, limiter.getConcurrencyLimit());
+	}
+
+	@Test
+	public void requestsWithoutResponseAreNotSampled() throws Exception {
+		DownloadLimiter limiter = new DownloadLimiter(new FakeClock());
+		for (int i = 0; i < 10; i++) {
+			limiter.acquire(false);
+			limiter.release(0, -1, 0, false);
+		}
+		for (int i = 0; i < 50; i++) {
+			complete(limiter, 100);
+		}
+		assertEquals(DownloadLimiter.MAX_CONCURRENCY, limiter.getConcurrencyLimit());
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void throughputDropBacksOff() throws Exception {
+		DownloadLimiter limiter = new DownloadLimiter(new FakeClock());
+		for (int i = 0; i < 50; i++) {
+			limiter.acquire(false);
+			limiter.release(RESPONSE_SIZE, 100, 10, false);
+		}
+		for (int i = 0; i < DownloadLimiter.MAX_CONCURRENCY * 2; i++) {
+			limiter.acquire(false);
+			limiter.release(RESPONSE_SIZE, 100, 100, false);
+		}
+		assertTrue(limiter.getConcurrencyLimit() < DownloadLimiter.MAX_CONCURRENCY);
+	}
+
+	@Test
+	public void foregroundReadsAreNeverThrottled() throws Exception {
+		FakeClock clock = new FakeClock();
+		DownloadLimiter limiter = new DownloadLimiter(clock);
+		limiter.setBackgroundBytesPerSecond(1000);
+		limiter.acquire(false);
+		assertEquals(0, limiter.consume(100000, false));
+		assertEquals(0, clock.slept);
+	}
+
+	@Test
+	public void backgroundReadsStayWithinBudget() throws Exception {
+		FakeClock clock = new FakeClock();
+		DownloadLimiter limiter = new DownloadLimiter(clock);
+		limiter.setBackgroundBytesPerSecond(1000);
+		limiter.acquire(true);
+
+		// The first second's worth is already in the bucket, the rest has to wait.
+		long throttled = 0;
+		for (int i = 0; i < 5; i++) {
+			throttled += limiter.consume(1000, true);
+		}
+		assertEquals(4000, clock.slept);
+		assertEquals(4000, throttled);
+		limiter.release(5000, 10, 0, false);
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void throttledReadGivesUpItsSlotWhileSleeping() throws Exception {
+		FakeClock clock = new FakeClock();
+		final DownloadLimiter limiter = new DownloadLimiter(clock);
+		final int[] inFlightWhileSleeping = new int[1];
+		clock.onSleep = new Runnable() {
+			public void run() {
+				inFlightWhileSleeping[0] = limiter.getInFlight();
+			}
+		};
+		limiter.setBackgroundBytesPerSecond(1000);
+		limiter.acquire(true);
+		limiter.consume(2000, true);
+
+		assertEquals(0, inFlightWhileSleeping[0]);
+		assertEquals(1, limiter.getInFlight());
+	}
+
+	@Test
+	public void backgroundWaitsForQueuedForeground() throws Exception {
+		final DownloadLimiter limiter = new DownloadLimiter(new FakeClock());
+		final List<String> order = new ArrayList<String>();
+		int slots = limiter.getConcurrencyLimit();
+		for (int i = 0; i < slots; i++) {
+			limiter.acquire(false);
+		}
+
+		Thread background = startAcquire(limiter, true, order);
+		Thread.sleep(100);
+		Thread foreground = startAcquire(limiter, false, order);
+		Thread.sleep(100);
+
+		limiter.release(RESPONSE_SIZE, 100, 0, false);
+		foreground.join(1000);
+		assertEquals("foreground", order.get(0));
+
+		limiter.release(RESPONSE_SIZE, 100, 0, false);
+		background.join(1000);
+		assertEquals("background", order.get(1));
+	}
+
+	private static Thread startAcquire(final DownloadLimiter limiter, final boolean background, final List<String> order) {
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					limiter.acquire(background);
+					synchronized (order) {
+						order.add(background ? "background" : "foreground");
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	// A stand-in server that handles one request at a time, so every extra
+	// parallel fetch only adds queueing latency, like a saturated mobile link.
+	@Test
+	public void limitStaysLowAgainstThrottledServer() throws Exception {
+		startServer(20, 1);
+		final DownloadLimiter limiter = new DownloadLimiter();
+		int maxLimit = runClients(limiter, DownloadLimiter.MAX_CONCURRENCY, 15);
+		assertTrue("limit reached " + maxLimit, maxLimit < DownloadLimiter.MAX_CONCURRENCY);
+	}
+
+	// The same fetches against a server that has spare capacity open up to the maximum.
+	@Test
+	public void limitRisesAgainstParallelServer() throws Exception {
+		startServer(20, DownloadLimiter.MAX_CONCURRENCY * 2);
+		final DownloadLimiter limiter = new DownloadLimiter();
+		int maxLimit = runClients(limiter, DownloadLimiter.MAX_CONCURRENCY, 15);
+		assertEquals(DownloadLimiter.MAX_CONCURRENCY, maxLimit);
+	}
+
+	// Responds after delay and sends the body BODY_DELAY later in a single write.
+	// BODY_DELAY is kept above the 40ms delayed ACK timeout, otherwise Nagle makes
+	// transfer times jump around far more than a real link would.
+	private void startServer(final long delay, int threads) throws Exception {
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		mServer.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws java.io.IOException {
+				try {
+					Thread.sleep(delay);
+					exchange.sendResponseHeaders(200, RESPONSE_SIZE);
+					OutputStream out = exchange.getResponseBody();
+					Thread.sleep(BODY_DELAY);
+					out.write(new byte[RESPONSE_SIZE]);
+					out.close();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		mServerExecutor = Executors.newFixedThreadPool(threads);
+		mServer.setExecutor(mServerExecutor);
+		mServer.start();
+	}
+
+	// Fetches the way FacebookImageLoader.downloadToFile() does and returns the
+	// highest concurrency limit seen.
+	private int runClients(final DownloadLimiter limiter, int clients, final int requestsPerClient) throws Exception {
+		final URL url = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/");
+		final AtomicInteger maxLimit = new AtomicInteger(limiter.getConcurrencyLimit());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < clients; i++) {
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < requestsPerClient; j++) {
+							limiter.acquire(false);
+							long startTime = DownloadLimiter.SYSTEM_CLOCK.elapsedMillis();
+							HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+							InputStream in = connection.getInputStream();
+							long latency = DownloadLimiter.SYSTEM_CLOCK.elapsedMillis() - startTime;
+							long bytes = 0;
+							byte[] buf = new byte[1024];
+							int len;
+							while ((len = in.read(buf)) != -1) {
+								bytes += len;
+							}
+							in.close();
+							long transferTime = DownloadLimiter.SYSTEM_CLOCK.elapsedMillis() - startTime - latency;
+							limiter.release(bytes, latency, transferTime, false);
+
+							int limit = limiter.getConcurrencyLimit();
+							int max;
+							while ((max = maxLimit.get()) < limit && !maxLimit.compareAndSet(max, limit)) {
+							}
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return maxLimit.get();
+	}
+}